@@ -0,0 +1,12 @@
+package com.base;
+
+//Callback fired once per HTTP command sent to the remote driver endpoint
+public interface CommandTimingListener {
+
+    //method and uri are the wire protocol request (e.g. POST /session/{id}/element),
+    //status is the HTTP status or -1 when the command failed with an IOException.
+    //elapsedMillis covers the whole command including waitMillis, the time spent waiting for a per-host permit.
+    //Byte counts are what went over the wire, i.e. after gzip when the body was compressed
+    void onCommand(String method, String uri, int status, long elapsedMillis, long waitMillis,
+                   int requestBytes, int responseBytes);
+}
@@ -0,0 +1,190 @@
+package com.base;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.openqa.selenium.remote.http.HttpClient;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+//Sends wire protocol commands over HttpURLConnection so sockets go back to the JDK keep-alive cache.
+//Created through PooledHttpClientFactory, one instance per remote address
+class PooledHttpClient implements HttpClient {
+
+    protected static final Logger logger = LogManager.getLogger("GLOBAL");
+
+    private final String baseUrl;
+    private final Semaphore permits;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int gzipRequestThreshold;
+    private final boolean gzipResponses;
+    private final List<CommandTimingListener> timingListeners;
+
+    PooledHttpClient(URL remoteAddress, Semaphore permits, int connectTimeoutMillis, int readTimeoutMillis,
+                     int gzipRequestThreshold, boolean gzipResponses, List<CommandTimingListener> timingListeners) {
+        String url = remoteAddress.toExternalForm();
+        this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.permits = permits;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.gzipRequestThreshold = gzipRequestThreshold;
+        this.gzipResponses = gzipResponses;
+        this.timingListeners = timingListeners;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        String method = request.getMethod().toString();
+        String uri = request.getUri();
+        byte[] body = request.getContent();
+        int requestBytes = body == null ? 0 : body.length;
+        int status = -1;
+        int responseBytes = 0;
+
+        //The clock starts before the permit so a saturated per-host bound shows up in the timings
+        long start = System.nanoTime();
+        long waitMillis = 0;
+        boolean acquired = false;
+        try {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + baseUrl);
+            }
+            acquired = true;
+            waitMillis = (System.nanoTime() - start) / 1000000;
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + uri).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setUseCaches(false);
+            for (String name : request.getHeaderNames()) {
+                if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Host")) {
+                    continue;
+                }
+                for (String value : request.getHeaders(name)) {
+                    connection.addRequestProperty(name, value);
+                }
+            }
+            //Keep grid side logs able to tell Selenium traffic apart, like the stock clients do
+            if (request.getHeader("User-Agent") == null) {
+                connection.setRequestProperty("User-Agent", HttpClient.USER_AGENT);
+            }
+            if (gzipResponses) {
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+            }
+
+            if (requestBytes > 0) {
+                if (shouldGzip(uri, requestBytes)) {
+                    body = gzip(body);
+                    requestBytes = body.length;
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+
+            status = connection.getResponseCode();
+            boolean gzipped = "gzip".equalsIgnoreCase(connection.getContentEncoding());
+            HttpResponse response = new HttpResponse();
+            response.setStatus(status);
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                //The status line comes back under a null key, and a gzipped body is handed on decoded
+                String name = header.getKey();
+                if (name == null || (gzipped && (name.equalsIgnoreCase("Content-Encoding")
+                        || name.equalsIgnoreCase("Content-Length")))) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    response.addHeader(name, value);
+                }
+            }
+
+            //Drain the raw body fully and close the stream before decoding, otherwise the socket is not returned
+            //to the pool. An empty body (204, empty DELETE reply) can still claim Content-Encoding: gzip
+            byte[] content = new byte[0];
+            try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                if (in != null) {
+                    content = readFully(in);
+                }
+            }
+            responseBytes = content.length;
+            if (gzipped && content.length > 0) {
+                content = gunzip(content);
+            }
+            response.setContent(content);
+            return response;
+        } finally {
+            if (acquired) {
+                permits.release();
+            }
+            //A command interrupted while queued spent all of its time waiting for the permit
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            fireTiming(method, uri, status, elapsedMillis, acquired ? waitMillis : elapsedMillis, requestBytes,
+                    responseBytes);
+        }
+    }
+
+    //Only executeScript payloads are worth compressing, every other command body is a few bytes of JSON
+    private boolean shouldGzip(String uri, int length) {
+        if (gzipRequestThreshold < 0 || length <= gzipRequestThreshold) {
+            return false;
+        }
+        return uri.endsWith("/execute") || uri.endsWith("/execute_async")
+                || uri.endsWith("/execute/sync") || uri.endsWith("/execute/async");
+    }
+
+    private void fireTiming(String method, String uri, int status, long elapsedMillis, long waitMillis,
+                            int requestBytes, int responseBytes) {
+        for (CommandTimingListener listener : timingListeners) {
+            try {
+                listener.onCommand(method, uri, status, elapsedMillis, waitMillis, requestBytes, responseBytes);
+            } catch (RuntimeException e) {
+                logger.error("Timing listener failed for " + method + " " + uri, e);
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return readFully(in);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,117 @@
+package com.base;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.CommandInfo;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.http.HttpClient;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+
+//HttpClient factory for remote grid sessions. Connections are kept alive and reused between commands,
+//the number of commands in flight against one host is bounded and every command is reported to the timing listeners
+public class PooledHttpClientFactory implements HttpClient.Factory {
+
+    protected static final Logger logger = LogManager.getLogger("GLOBAL");
+
+    private final int maxConnectionsPerHost;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final List<CommandTimingListener> timingListeners = new CopyOnWriteArrayList<>();
+    private volatile int gzipRequestThreshold = -1;
+    private volatile boolean gzipResponses = false;
+
+    //Allows as many commands per host as the JDK keeps idle sockets for (http.maxConnections, default 5),
+    //so every socket a burst opens can be reused by the next one
+    public PooledHttpClientFactory() {
+        this(idleConnectionsPerHost(), 30000, 180000);
+    }
+
+    public PooledHttpClientFactory(int maxConnectionsPerHost, int connectTimeoutMillis, int readTimeoutMillis) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1: " + maxConnectionsPerHost);
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+
+        //The JDK keep-alive cache only holds http.maxConnections idle sockets per host (default 5) and reads it
+        //once, on first use. It has to be raised at JVM startup, e.g. -Dhttp.maxConnections=16
+        int idleConnections = idleConnectionsPerHost();
+        if (idleConnections < maxConnectionsPerHost) {
+            logger.warn("http.maxConnections is " + idleConnections + " but up to " + maxConnectionsPerHost
+                    + " commands may run per host, extra sockets will be closed after each command."
+                    + " Start the JVM with -Dhttp.maxConnections=" + maxConnectionsPerHost);
+        }
+    }
+
+    //Gzip executeScript request bodies larger than the given number of bytes, -1 disables it.
+    //Only enable this when the grid endpoint accepts Content-Encoding: gzip on requests.
+    //Applies to clients created after the call, so set it before newRemoteDriver
+    public void setGzipRequestThreshold(int bytes) {
+        this.gzipRequestThreshold = bytes;
+    }
+
+    //Ask the grid endpoint for gzipped responses (Accept-Encoding: gzip), off by default.
+    //Like the request threshold it applies to clients created after the call
+    public void setGzipResponses(boolean gzipResponses) {
+        this.gzipResponses = gzipResponses;
+    }
+
+    public void addTimingListener(CommandTimingListener listener) {
+        timingListeners.add(listener);
+    }
+
+    public void removeTimingListener(CommandTimingListener listener) {
+        timingListeners.remove(listener);
+    }
+
+    @Override
+    public HttpClient createClient(URL url) {
+        return new PooledHttpClient(url, permitsFor(url), connectTimeoutMillis, readTimeoutMillis,
+                gzipRequestThreshold, gzipResponses, timingListeners);
+    }
+
+    //Idle sockets are owned by the JDK keep-alive cache, which expires them on its own
+    @Override
+    public void cleanupIdleClients() {
+    }
+
+    //Create a RemoteWebDriver whose commands go through this factory, pass it to the page objects as usual
+    public RemoteWebDriver newRemoteDriver(URL remoteAddress, Capabilities capabilities) {
+        HttpCommandExecutor executor = new HttpCommandExecutor(
+                Collections.<String, CommandInfo>emptyMap(), remoteAddress, this);
+        return new RemoteWebDriver(executor, capabilities);
+    }
+
+    //Same rule as the JDK keep-alive cache: unset or non-positive values mean 5
+    private static int idleConnectionsPerHost() {
+        int idleConnections = Integer.getInteger("http.maxConnections", 5);
+        return idleConnections > 0 ? idleConnections : 5;
+    }
+
+    //All clients talking to the same host share one set of permits
+    private Semaphore permitsFor(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+        Semaphore permits = hostPermits.get(key);
+        if (permits == null) {
+            Semaphore created = new Semaphore(maxConnectionsPerHost, true);
+            permits = hostPermits.putIfAbsent(key, created);
+            if (permits == null) {
+                permits = created;
+                logger.info("Limiting " + key + " to " + maxConnectionsPerHost + " concurrent commands");
+            }
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,484 @@
+package com.base;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.openqa.selenium.ImmutableCapabilities;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.http.HttpClient;
+import org.openqa.selenium.remote.http.HttpMethod;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Runs PooledHttpClient against a local stub speaking the WebDriver wire protocol
+class PooledHttpClientTest {
+
+    private static final int MAX_CONNECTIONS = 2;
+    private static final int GZIP_THRESHOLD = 1024;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private StubDriverEndpoint stub;
+    private PooledHttpClientFactory factory;
+    private List<Timing> timings;
+
+    @BeforeEach
+    void startStub() throws IOException {
+        stub = new StubDriverEndpoint();
+        serverThreads = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", stub);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        timings = new CopyOnWriteArrayList<>();
+        factory = new PooledHttpClientFactory(MAX_CONNECTIONS, 5000, 5000);
+        factory.setGzipRequestThreshold(GZIP_THRESHOLD);
+        factory.addTimingListener(new CommandTimingListener() {
+            @Override
+            public void onCommand(String method, String uri, int status, long elapsedMillis, long waitMillis,
+                                  int requestBytes, int responseBytes) {
+                timings.add(new Timing(method, uri, status, requestBytes, responseBytes, elapsedMillis, waitMillis));
+            }
+        });
+    }
+
+    @AfterEach
+    void stopStub() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    void consecutiveCommandsReuseOneSocket() throws IOException {
+        HttpClient client = newClient();
+        for (int i = 0; i < 5; i++) {
+            HttpResponse response = client.execute(post("/session/1/url", "{\"url\":\"http://example.com\"}"));
+            assertEquals(200, response.getStatus());
+        }
+
+        assertEquals(5, stub.requests.size());
+        assertEquals(1, stub.remoteAddresses().size());
+        assertEquals(HttpClient.USER_AGENT, stub.requests.get(0).userAgent);
+    }
+
+    @Test
+    void remoteDriverCommandsGoThroughPooledClient() throws IOException {
+        URL remoteAddress = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/wd/hub");
+        RemoteWebDriver driver = factory.newRemoteDriver(remoteAddress, new ImmutableCapabilities("browserName", "stub"));
+        try {
+            assertEquals(StubDriverEndpoint.SESSION_ID, driver.getSessionId().toString());
+            driver.get("http://example.com");
+        } finally {
+            driver.quit();
+        }
+
+        assertEquals(3, stub.requests.size());
+        //Selenium escapes the slashes of the url in its JSON
+        assertTrue(stub.requests.get(1).body.contains("example.com"));
+        assertEquals(1, stub.remoteAddresses().size());
+
+        String session = "/session/" + StubDriverEndpoint.SESSION_ID;
+        assertEquals("POST /session", timings.get(0).method + " " + timings.get(0).uri);
+        assertEquals(200, timings.get(0).status);
+        assertEquals(new Timing("POST", session + "/url", 200, stub.requests.get(1).rawLength,
+                StubDriverEndpoint.NULL_VALUE.length()), timings.get(1));
+        assertEquals(new Timing("DELETE", session, 200, 0, StubDriverEndpoint.NULL_VALUE.length()), timings.get(2));
+    }
+
+    @Test
+    void largeExecuteScriptRequestIsGzipped() throws IOException {
+        String script = "{\"script\":\"return '" + repeat('a', 4 * GZIP_THRESHOLD) + "';\",\"args\":[]}";
+        HttpResponse response = newClient().execute(post("/session/1/execute/sync", script));
+
+        Recorded request = stub.requests.get(0);
+        assertEquals("gzip", request.contentEncoding);
+        assertEquals(script, request.body);
+        assertTrue(request.rawLength < script.length());
+        assertEquals(request.rawLength, timings.get(0).requestBytes);
+        assertEquals(200, response.getStatus());
+    }
+
+    @Test
+    void smallOrNonScriptRequestsAreSentPlain() throws IOException {
+        HttpClient client = newClient();
+        client.execute(post("/session/1/execute/sync", "{\"script\":\"return 1;\",\"args\":[]}"));
+        client.execute(post("/session/1/element", "{\"using\":\"css selector\",\"value\":\""
+                + repeat('b', 4 * GZIP_THRESHOLD) + "\"}"));
+
+        assertNull(stub.requests.get(0).contentEncoding);
+        assertNull(stub.requests.get(1).contentEncoding);
+    }
+
+    @Test
+    void gzippedResponseIsDecoded() throws IOException {
+        factory.setGzipResponses(true);
+        HttpResponse response = newClient().execute(get("/session/1/gzip"));
+
+        assertEquals("gzip", stub.requests.get(0).acceptEncoding);
+        assertEquals(200, response.getStatus());
+        assertEquals(StubDriverEndpoint.GZIP_VALUE, new String(response.getContent(), StandardCharsets.UTF_8));
+        assertNull(response.getHeader("Content-Encoding"));
+        assertNull(response.getHeader("Content-Length"));
+        assertTrue(timings.get(0).responseBytes < StubDriverEndpoint.GZIP_VALUE.length());
+    }
+
+    @Test
+    void responsesAreNotGzippedByDefault() throws IOException {
+        HttpResponse response = newClient().execute(get("/session/1/gzip"));
+
+        assertNull(stub.requests.get(0).acceptEncoding);
+        assertEquals(StubDriverEndpoint.GZIP_VALUE, new String(response.getContent(), StandardCharsets.UTF_8));
+        assertEquals(StubDriverEndpoint.GZIP_VALUE.length(), timings.get(0).responseBytes);
+    }
+
+    @Test
+    void emptyGzipEncodedResponseKeepsSocket() throws IOException {
+        HttpClient client = newClient();
+        HttpResponse response = client.execute(new HttpRequest(HttpMethod.DELETE, "/session/1/empty"));
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(new byte[0], response.getContent());
+
+        client.execute(get("/session/1/url"));
+        assertEquals(1, stub.remoteAddresses().size());
+    }
+
+    @Test
+    void errorResponseReturnsItsBody() throws IOException {
+        HttpClient client = newClient();
+        HttpResponse response = client.execute(get("/session/1/element/missing"));
+
+        assertEquals(404, response.getStatus());
+        assertEquals(StubDriverEndpoint.NO_SUCH_ELEMENT, new String(response.getContent(), StandardCharsets.UTF_8));
+
+        client.execute(get("/session/1/url"));
+        assertEquals(1, stub.remoteAddresses().size());
+    }
+
+    @Test
+    void concurrentCommandsAreBoundedPerHost() throws Exception {
+        final HttpClient first = newClient();
+        final HttpClient second = newClient();
+        ExecutorService callers = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<HttpResponse>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                final HttpClient client = i % 2 == 0 ? first : second;
+                results.add(callers.submit(new Callable<HttpResponse>() {
+                    @Override
+                    public HttpResponse call() throws IOException {
+                        return client.execute(get("/session/1/slow"));
+                    }
+                }));
+            }
+            for (Future<HttpResponse> result : results) {
+                assertEquals(200, result.get(10, TimeUnit.SECONDS).getStatus());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals(MAX_CONNECTIONS, stub.maxInFlight.get());
+
+        //Six 200ms commands through two permits: the last pair waits for two rounds
+        long longestWait = 0;
+        for (Timing timing : timings) {
+            assertTrue(timing.elapsedMillis >= timing.waitMillis);
+            longestWait = Math.max(longestWait, timing.waitMillis);
+        }
+        assertTrue(longestWait >= 300, "longest permit wait was " + longestWait + "ms");
+    }
+
+    @Test
+    void timingListenerSeesEachCommand() throws IOException {
+        String body = "{\"url\":\"http://example.com\"}";
+        HttpClient client = newClient();
+        client.execute(post("/session/1/url", body));
+        client.execute(get("/session/1/element/missing"));
+
+        assertEquals(2, timings.size());
+        assertEquals(new Timing("POST", "/session/1/url", 200, body.length(), StubDriverEndpoint.NULL_VALUE.length()),
+                timings.get(0));
+        assertEquals(new Timing("GET", "/session/1/element/missing", 404, 0, StubDriverEndpoint.NO_SUCH_ELEMENT.length()),
+                timings.get(1));
+    }
+
+    @Test
+    void timingListenerSeesFailedCommand() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        final HttpClient client = factory.createClient(new URL("http://127.0.0.1:" + closedPort + "/wd/hub"));
+        final String body = "{\"url\":\"http://example.com\"}";
+
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                client.execute(post("/session/1/url", body));
+            }
+        });
+        assertEquals(new Timing("POST", "/session/1/url", -1, body.length(), 0), timings.get(0));
+    }
+
+    @Test
+    void timingListenerSeesInterruptedCommand() throws Exception {
+        final HttpClient client = newClient();
+        final String body = "{\"url\":\"http://example.com\"}";
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(InterruptedIOException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    client.execute(post("/session/1/url", body));
+                }
+            });
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(new Timing("POST", "/session/1/url", -1, body.length(), 0), timings.get(0));
+        assertTrue(stub.requests.isEmpty());
+
+        //The permit was never taken, so none may be handed back
+        ExecutorService callers = Executors.newFixedThreadPool(MAX_CONNECTIONS + 1);
+        try {
+            List<Future<HttpResponse>> results = new ArrayList<>();
+            for (int i = 0; i < MAX_CONNECTIONS + 1; i++) {
+                results.add(callers.submit(new Callable<HttpResponse>() {
+                    @Override
+                    public HttpResponse call() throws IOException {
+                        return client.execute(get("/session/1/slow"));
+                    }
+                }));
+            }
+            for (Future<HttpResponse> result : results) {
+                assertEquals(200, result.get(10, TimeUnit.SECONDS).getStatus());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(MAX_CONNECTIONS, stub.maxInFlight.get());
+    }
+
+    private HttpClient newClient() throws IOException {
+        return factory.createClient(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/wd/hub/"));
+    }
+
+    private static HttpRequest get(String uri) {
+        return new HttpRequest(HttpMethod.GET, uri);
+    }
+
+    private static HttpRequest post(String uri, String json) {
+        HttpRequest request = new HttpRequest(HttpMethod.POST, uri);
+        request.setHeader("Content-Type", "application/json; charset=utf-8");
+        request.setContent(json.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    //Answers like a driver endpoint: a W3C reply to new session, {"value":null} to other commands by default,
+    //and a few paths trigger the cases under test
+    private static class StubDriverEndpoint implements HttpHandler {
+
+        static final String SESSION_ID = "stub-session";
+        static final String NEW_SESSION = "{\"value\":{\"sessionId\":\"" + SESSION_ID
+                + "\",\"capabilities\":{\"browserName\":\"stub\",\"platformName\":\"linux\"}}}";
+        static final String NULL_VALUE = "{\"value\":null}";
+        static final String NO_SUCH_ELEMENT = "{\"value\":{\"error\":\"no such element\",\"message\":\"missing\"}}";
+        static final String GZIP_VALUE = "{\"value\":\"" + repeat('c', 2048) + "\"}";
+
+        final List<Recorded> requests = new CopyOnWriteArrayList<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] raw = readFully(exchange.getRequestBody());
+                String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                byte[] body = raw;
+                if ("gzip".equals(encoding)) {
+                    body = readFully(new GZIPInputStream(new ByteArrayInputStream(raw)));
+                }
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                requests.add(new Recorded(exchange.getRemoteAddress(), encoding, acceptEncoding,
+                        exchange.getRequestHeaders().getFirst("User-Agent"), raw.length,
+                        new String(body, StandardCharsets.UTF_8)));
+
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/session") && "POST".equals(exchange.getRequestMethod())) {
+                    send(exchange, 200, NEW_SESSION.getBytes(StandardCharsets.UTF_8));
+                } else if (path.endsWith("/missing")) {
+                    send(exchange, 404, NO_SUCH_ELEMENT.getBytes(StandardCharsets.UTF_8));
+                } else if (path.endsWith("/empty")) {
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (path.endsWith("/gzip") && "gzip".equals(acceptEncoding)) {
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                    send(exchange, 200, gzip(GZIP_VALUE.getBytes(StandardCharsets.UTF_8)));
+                } else if (path.endsWith("/gzip")) {
+                    send(exchange, 200, GZIP_VALUE.getBytes(StandardCharsets.UTF_8));
+                } else if (path.endsWith("/slow")) {
+                    int current = inFlight.incrementAndGet();
+                    int max;
+                    while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current)) {
+                    }
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                    send(exchange, 200, NULL_VALUE.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    send(exchange, 200, NULL_VALUE.getBytes(StandardCharsets.UTF_8));
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        Set<InetSocketAddress> remoteAddresses() {
+            Set<InetSocketAddress> addresses = new HashSet<>();
+            for (Recorded request : requests) {
+                addresses.add(request.remoteAddress);
+            }
+            return addresses;
+        }
+
+        private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private static byte[] gzip(byte[] data) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write(data);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class Recorded {
+        final InetSocketAddress remoteAddress;
+        final String contentEncoding;
+        final String acceptEncoding;
+        final String userAgent;
+        final int rawLength;
+        final String body;
+
+        Recorded(InetSocketAddress remoteAddress, String contentEncoding, String acceptEncoding, String userAgent,
+                 int rawLength, String body) {
+            this.remoteAddress = remoteAddress;
+            this.contentEncoding = contentEncoding;
+            this.acceptEncoding = acceptEncoding;
+            this.userAgent = userAgent;
+            this.rawLength = rawLength;
+            this.body = body;
+        }
+    }
+
+    private static class Timing {
+        final String method;
+        final String uri;
+        final int status;
+        final int requestBytes;
+        final int responseBytes;
+        final long elapsedMillis;
+        final long waitMillis;
+
+        Timing(String method, String uri, int status, int requestBytes, int responseBytes) {
+            this(method, uri, status, requestBytes, responseBytes, 0, 0);
+        }
+
+        Timing(String method, String uri, int status, int requestBytes, int responseBytes,
+               long elapsedMillis, long waitMillis) {
+            this.method = method;
+            this.uri = uri;
+            this.status = status;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.elapsedMillis = elapsedMillis;
+            this.waitMillis = waitMillis;
+        }
+
+        //Durations vary from run to run, only what was sent and received is compared
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Timing)) {
+                return false;
+            }
+            Timing other = (Timing) o;
+            return method.equals(other.method) && uri.equals(other.uri) && status == other.status
+                    && requestBytes == other.requestBytes && responseBytes == other.responseBytes;
+        }
+
+        @Override
+        public int hashCode() {
+            return (method + " " + uri).hashCode() * 31 + status;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + uri + " " + status + " " + requestBytes + "/" + responseBytes;
+        }
+    }
+}